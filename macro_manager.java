@@ -13,17 +13,57 @@ import ij.process.*;
 import ij.gui.*;
 import ij.plugin.*;
 import ij.plugin.frame.*;
+import ij.macro.Interpreter;
 
 import javax.swing.*;
 import javax.swing.filechooser.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.PrintWriter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.net.InetAddress;
+
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.AtomicMoveNotSupportedException;
 
-import java.util.Scanner;
 import java.util.Vector;
+import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.LinkedHashSet;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.regex.Matcher;
+
+import java.text.SimpleDateFormat;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 
 import java.awt.*;
 import java.awt.event.*;
@@ -38,11 +78,25 @@ public class macro_manager implements PlugIn{
 	*/
 	//macro paths are stored in macroManagerSettings.txt
 	final String settingsPath=IJ.getDir("plugins") + "Macro Manager\\macroManagerSettings.txt";
+	//all reads and writes of the settings file go through settings, it may be shared with other instances
+	settingsStore settings = new settingsStore(settingsPath);
+	ScheduledExecutorService settingsPoller;//picks up changes made by other instances, on a background thread
+	int pollInterval = 2000;//ms
+	HashMap<String, Boolean> validMacros = new HashMap<String, Boolean>();//cached results of isValidMacro()
+	//launches, completions, failures and cancellations are recorded in a journal per machine,
+	//kept in the user's home folder and not next to the settings file, which may be shared
+	final String journalPath=runJournal.defaultPath();
+	runJournal journal;//null if journal could not be opened
+	//macros run by each macro, kept between launches to check for missing dependencies
+	dependencyGraph dependencies = new dependencyGraph(IJ.getDir("macros"));
+	macroLauncher launcher;//runs macros for the launch buttons, created in run()
 	
 	//GUI parameters
 	JFrame mainFrame;
 	JPanel btnPanel;
-	macro[] macroArray;//array to store macros
+	macro[] macroArray;//array to store macros, all entries of all groups
+	macroGroup[] groups;//groups of macros, shown as tabs if more than one
+	String selectedGroup = macroGroup.DEFAULT_NAME;//group shown in GUI, new macros are added to it
 	//Size settings for GUI
 	int gap = 5;//gap for buttons etc
 	int frameWidth = 275;
@@ -73,8 +127,24 @@ public class macro_manager implements PlugIn{
 			IJ.showMessage("Exception thrown by checkSettingsFile(), called from run()." + 
 			"\nFile could not be found or could not be created");
 		}	
-		if(settingsFileExists)
+		if(settingsFileExists){
+			//open run journal, plugin works without it
+			try{
+				journal = runJournal.open(journalPath);
+			}
+			catch(IOException e2){
+				IJ.showMessage("Exception thrown by runJournal.open(), called from run()." + 
+				"\nRun journal " + journalPath + " could not be opened. Macro runs will not be recorded.");
+			}
+			catch(OverlappingFileLockException e2){
+				//should be handled by runJournal.open(), but never keep the plugin from starting
+				IJ.showMessage("Exception thrown by runJournal.open(), called from run()." + 
+				"\nRun journal " + journalPath + " is locked. Macro runs will not be recorded.");
+			}
+			launcher = new macroLauncher(dependencies, journal);
 			refreshGui();//refreshGui works on first creation as well
+			startSettingsPoller();
+		}
 	}
 	
 	/*
@@ -118,47 +188,94 @@ public class macro_manager implements PlugIn{
 	* readLines()
 	* 
 	* read lines from file to retrieve macro paths
+	* file is only read again if it changed
 	* 
 	* returns String[] containing macroPaths
 	* throws Exception
 	* ---------------------------------------------------
 	*/
 	private String[] readLines() throws Exception{
-		File file = new File(settingsPath);
-		//count number of lines in file
-		Scanner scCounter = new Scanner(file);
-		int lines=0;
-		while (scCounter.hasNextLine()) {
-			scCounter.nextLine();
-			lines++;
-		}
-		
-		//read lines from file, store in String array
-		Scanner scReader =  new Scanner(file);
-		String[] macroPaths = new String[lines];
-		int index=0;
-		while (scReader.hasNextLine()) {
-			macroPaths[index++]=scReader.nextLine();
-		}
-		return macroPaths;
+		return settings.read().lines;
 	}//readlines
 	
+	/*
+	* ---------------------------------------------------
+	* startSettingsPoller()
+	* 
+	* Periodically check settings file for changes made by other ImageJ instances
+	* and update GUI when it changed. Stopped by stopPollerOnClose() when the GUI is closed
+	* Checks run on a background thread, since file status checks on a disconnected share
+	* can take seconds; only updateGui() runs on the event thread
+	* ---------------------------------------------------
+	*/
+	private void startSettingsPoller(){
+		settingsPoller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "Macro Manager settings poller");
+				t.setDaemon(true);//do not keep ImageJ from exiting
+				return t;
+			}
+		});
+		//fixed delay: a slow check is not followed by a burst of queued ones
+		settingsPoller.scheduleWithFixedDelay(new Runnable(){
+			public void run(){
+				try{
+					if(settings.poll()){
+						SwingUtilities.invokeLater(new Runnable(){
+							public void run(){
+								if(mainFrame != null && mainFrame.isVisible())
+									updateGui();
+							}
+						});
+					}
+				}
+				catch(Exception e5){
+					//settings file temporarily unavailable, e.g. share disconnected; try again next time
+					//any exception would otherwise cancel all further checks
+				}
+			}
+		}, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+	}//startSettingsPoller
+	
+	/*
+	* ---------------------------------------------------
+	* stopPollerOnClose()
+	* 
+	* Stop settings poller when the user closes the given GUI window
+	* 
+	* input JFrame: GUI window
+	* ---------------------------------------------------
+	*/
+	private void stopPollerOnClose(JFrame frame){
+		frame.addWindowListener(new WindowAdapter(){
+			public void windowClosing(WindowEvent e){
+				if(settingsPoller != null)
+					settingsPoller.shutdown();
+			}
+		});
+	}
+	
 	/*
 	* ---------------------------------------------------
 	* populateMacroArray()
 	*
-	* Create macro objects based on paths in settings file
-	* Store in macroArray	
+	* Create macro objects and groups based on entries in settings file
+	* Store in macroArray and groups
+	* Macro files are not checked here but when their group is first shown
 	* ---------------------------------------------------
 	*/
 	private void populateMacroArray(){
 		try{
-			String[] macroPaths = readLines();
-			macroArray = new macro[countValidMacros(macroPaths)];
+			String[] lines = readLines();
+			groups = macroGroup.parse(lines);
+			int noEntries = 0;
+			for(int i=0;i<groups.length;i++)
+				noEntries += groups[i].macros.length;
+			macroArray = new macro[noEntries];
 			int index=0;
-			for(int i=0;i<macroPaths.length;i++){
-				if(isValidMacro(macroPaths[i]))
-					macroArray[index++]=new macro(macroPaths[i]);
+			for(int i=0;i<groups.length;i++){
+				for(int j=0;j<groups[i].macros.length;j++)
+					macroArray[index++]=groups[i].macros[j];
 			}
 		}
 		catch(Exception e){
@@ -168,21 +285,21 @@ public class macro_manager implements PlugIn{
 
 	/*
 	* ---------------------------------------------------
-	* countValidMacros()
+	* getValidMacros()
 	* 
-	* Count number of valid macros in String array
+	* Get macros with valid macro files
 	* 
-	* input String[]: containing all macro paths
-	* returns int
+	* input macro[]: macros to check
+	* returns macro[]: valid macros, in the same order
 	* ---------------------------------------------------
 	*/	
-	private int countValidMacros(String[] macroPaths){
-		int count = 0;
-		for(int i=0; i<macroPaths.length;i++){
-			if(isValidMacro(macroPaths[i]))
-				count++;
+	private macro[] getValidMacros(macro[] macros){
+		Vector<macro> valid = new Vector<macro>();
+		for(int i=0; i<macros.length;i++){
+			if(isValidMacro(macros[i].getPath()))
+				valid.add(macros[i]);
 		}
-		return count;
+		return valid.toArray(new macro[valid.size()]);
 	}
 
 	/*
@@ -197,6 +314,26 @@ public class macro_manager implements PlugIn{
 	* ---------------------------------------------------
 	*/	
 	private Boolean isValidMacro(String macroPath){
+		//macros already checked since last refresh are not checked again
+		Boolean valid = validMacros.get(macroPath);
+		if(valid == null){
+			valid = checkMacroFile(macroPath);
+			validMacros.put(macroPath, valid);
+		}
+		return valid;
+	}//isValidMacro
+	
+	/*
+	* ---------------------------------------------------
+	* checkMacroFile()
+	* 
+	* Check file for isValidMacro(), without cache
+	* 
+	* input String: containing path to macro
+	* return Boolean: true if valid macro path
+	* ---------------------------------------------------
+	*/	
+	private Boolean checkMacroFile(String macroPath){
 		File tmpMacro = new File(macroPath);
 		String[] validFileExtensions= {".txt", ".ijm"};
 		if(tmpMacro.exists()){
@@ -208,7 +345,7 @@ public class macro_manager implements PlugIn{
 		}//exists
 		//either not valid file or not possessing valid extension
 		return false;
-	}//isValidMacro
+	}//checkMacroFile
 	
 	/*
 	* ---------------------------------------------------
@@ -233,9 +370,23 @@ public class macro_manager implements PlugIn{
 	* refreshGui()
 	* 
 	* Refresh GUI by removing previous version (if any) and rebuilding it
+	* All macro files are checked again
 	* ---------------------------------------------------
 	*/
 	private void refreshGui(){
+		validMacros.clear();
+		rebuildGui();
+	}
+	
+	/*
+	* ---------------------------------------------------
+	* rebuildGui()
+	* 
+	* Rebuild GUI from settings file, only checking macro files not checked before
+	* Replaces the previous window (if any) by a new one at the same location
+	* ---------------------------------------------------
+	*/
+	private void rebuildGui(){
 		//reload macro path list
 		try{
 			populateMacroArray();
@@ -243,6 +394,7 @@ public class macro_manager implements PlugIn{
 		catch(Exception e3){
 			IJ.showMessage("Exception thrown by populateMacroArray(), called from refreshGui().");
 		} 
+		boolean hasMacros = prepareGroups();
 		
 		//get location of mainFrame if it exists. Otherwise, use imageJ window to derive GUI coordinates
 		int[] windowLocation = new int[2];
@@ -250,27 +402,74 @@ public class macro_manager implements PlugIn{
 			Point mainFramePoint = mainFrame.getLocation();
 			windowLocation[0] = (int)mainFramePoint.getX();
 			windowLocation[1]= (int)mainFramePoint.getY();
-			mainFrame.setVisible(false);
+			mainFrame.dispose();
 		} catch(Exception e){
 		//Could not get macro_manager GUI location, use ImageJ's location instead
 			windowLocation=getWindowLocation();	
 		}
 
 		//check which buildGui() function to use, based on whether there are macros in the list or not
-		int noMacros=0;
-		try{
-			String[] macroPaths = readLines();
-			noMacros = countValidMacros(macroPaths);
-		}catch(Exception e){
-			IJ.showMessage("Readlines exception, called from run()");
-		}
 		//int[] windowLocation=getWindowLocation();
-		if(noMacros>0)
+		if(hasMacros)
 			buildGui(windowLocation[0],windowLocation[1]);
 		else
 			buildGuiNoMacros(windowLocation[0],windowLocation[1]);//no macros in file, create empty GUI
 	}
 	
+	/*
+	* ---------------------------------------------------
+	* updateGui()
+	* 
+	* Update contents of GUI in place after another instance changed the settings file
+	* The window keeps its location and visibility; panels of unchanged groups are reused
+	* ---------------------------------------------------
+	*/
+	private void updateGui(){
+		macroGroup[] oldGroups = groups;
+		try{
+			populateMacroArray();
+			}
+		catch(Exception e3){
+			IJ.showMessage("Exception thrown by populateMacroArray(), called from updateGui().");
+		} 
+		//reuse panels of groups whose entries did not change
+		for(int i=0; oldGroups != null && groups != null && i<groups.length; i++){
+			for(int j=0; j<oldGroups.length; j++){
+				if(oldGroups[j].panel != null && groups[i].sameEntries(oldGroups[j])){
+					groups[i].panel = oldGroups[j].panel;
+					groups[i].validCount = oldGroups[j].validCount;
+				}
+			}
+		}
+		
+		mainFrame.getContentPane().removeAll();
+		if(prepareGroups())
+			addMacroContent();
+		else
+			addNoMacrosContent();
+		mainFrame.validate();
+		mainFrame.repaint();
+	}//updateGui
+	
+	/*
+	* ---------------------------------------------------
+	* prepareGroups()
+	* 
+	* Build panel of a single group right away; groups shown as tabs are built when first shown
+	* 
+	* returns boolean: true if GUI has macros to show, false for the empty GUI
+	* ---------------------------------------------------
+	*/
+	private boolean prepareGroups(){
+		if(groups == null || groups.length == 0)
+			return false;
+		if(groups.length > 1)
+			return true;
+		if(groups[0].panel == null)
+			buildGroupPanel(groups[0]);
+		return groups[0].validCount > 0;
+	}
+	
 	/*
 	* ---------------------------------------------------
 	* getWindowLocation()
@@ -300,6 +499,7 @@ public class macro_manager implements PlugIn{
 	* 
 	* Construct GUI by coordinating function calls
 	* Used by refreshGUI to ensure refreshed GUI is located where previous one was (if moved)
+	* A single group is shown as a plain button panel, several groups as tabs
 	* 
 	* input int: x coordinate, top left corner
 	* 		int: y coordinate, top left corner
@@ -308,18 +508,96 @@ public class macro_manager implements PlugIn{
 	private void buildGui(int xLocation, int yLocation){
 		mainFrame = new JFrame("Macro manager");
 		mainFrame.setLayout(new GridLayout(0, 1, gap, gap));
-		JPanel btnPanel = buildBtnPanel();
 		JMenuBar mb = buildJMenuBar();
-
-		mainFrame.add(btnPanel);
 		mainFrame.setJMenuBar(mb);
-		
-		mainFrame.setSize(frameWidth,baseHeight+framHeightPerButton*(macroArray.length));
+		stopPollerOnClose(mainFrame);
+		addMacroContent();
 		mainFrame.setLocation(xLocation, yLocation);
 		
 		mainFrame.setVisible(true);
 	}//buildGui
 	
+	/*
+	* ---------------------------------------------------
+	* addMacroContent()
+	* 
+	* Add macro buttons, or tabs for several groups, to mainFrame and size it to fit
+	* ---------------------------------------------------
+	*/
+	private void addMacroContent(){
+		if(groups.length == 1){
+			//panel was built by prepareGroups()
+			selectedGroup = groups[0].name;
+			mainFrame.add(groups[0].panel);
+			mainFrame.setSize(frameWidth,baseHeight+framHeightPerButton*(groups[0].validCount));
+		}
+		else{
+			//one tab per group, panels are built by showGroup() when a tab is first selected
+			final JTabbedPane groupTabs = new JTabbedPane(JTabbedPane.TOP, JTabbedPane.SCROLL_TAB_LAYOUT);
+			int selected = 0;
+			for(int i=0; i<groups.length; i++){
+				//panels already built are reused by updateGui()
+				groupTabs.addTab(groups[i].name, groups[i].panel != null ? groups[i].panel : new JPanel());
+				if(groups[i].name.equals(selectedGroup))
+					selected = i;//keep showing the same group after refresh
+			}
+			groupTabs.setSelectedIndex(selected);
+			showGroup(groupTabs, selected);
+			groupTabs.addChangeListener(new ChangeListener(){
+				public void stateChanged(ChangeEvent e){
+					showGroup(groupTabs, groupTabs.getSelectedIndex());
+				}
+			});
+			mainFrame.add(groupTabs);
+		}
+	}//addMacroContent
+	
+	/*
+	* ---------------------------------------------------
+	* showGroup()
+	* 
+	* Show group in its tab, building its panel if it is shown for the first time
+	* Resize GUI to fit the group's buttons
+	* 
+	* input JTabbedPane: tabs of GUI
+	* 		int: index of group and tab
+	* ---------------------------------------------------
+	*/
+	private void showGroup(JTabbedPane groupTabs, int index){
+		if(index < 0)
+			return;
+		macroGroup group = groups[index];
+		selectedGroup = group.name;
+		if(group.panel == null){
+			buildGroupPanel(group);
+			groupTabs.setComponentAt(index, group.panel);
+		}
+		//one extra row for the tabs
+		mainFrame.setSize(frameWidth,baseHeight+framHeightPerButton*(Math.max(group.validCount, 1)+1));
+	}//showGroup
+	
+	/*
+	* ---------------------------------------------------
+	* buildGroupPanel()
+	* 
+	* Check macro files of group and build its button panel
+	* Stores panel and number of valid macros in group
+	* 
+	* input macroGroup: group to build panel for
+	* ---------------------------------------------------
+	*/
+	private void buildGroupPanel(macroGroup group){
+		macro[] validMacros = getValidMacros(group.macros);
+		group.validCount = validMacros.length;
+		if(validMacros.length > 0){
+			group.panel = buildBtnPanel(validMacros);
+		}
+		else{
+			group.panel = new JPanel();
+			group.panel.add(new JLabel("There are no valid macros in this group."));
+		}
+	}//buildGroupPanel
+	
 	/*
 	* ---------------------------------------------------
 	* buildGuiNoMacros()
@@ -333,7 +611,24 @@ public class macro_manager implements PlugIn{
 	private void buildGuiNoMacros(int xLocation, int yLocation){
 		mainFrame = new JFrame("Macro manager");
 		mainFrame.setLayout(new GridLayout(0,1, gap, gap));
-
+		JMenuBar mb = buildJMenuBar();
+		mainFrame.setJMenuBar(mb);
+		stopPollerOnClose(mainFrame);
+		addNoMacrosContent();
+		mainFrame.setLocation(xLocation, yLocation);
+		
+		mainFrame.setVisible(true);
+		
+	}//buildGuiNoMacros
+	
+	/*
+	* ---------------------------------------------------
+	* addNoMacrosContent()
+	* 
+	* Add message prompting user to add macros to mainFrame and size it to fit
+	* ---------------------------------------------------
+	*/
+	private void addNoMacrosContent(){
 		JPanel emptyPanel = new JPanel();
 		JLabel emptyLabel0=new JLabel(" ");
 		JLabel emptyLabel1=new JLabel("There are no valid macros in the settings file.");
@@ -342,27 +637,21 @@ public class macro_manager implements PlugIn{
 		emptyPanel.add(emptyLabel1);
 		emptyPanel.add(emptyLabel2);
 		
-		JMenuBar mb = buildJMenuBar();
 		mainFrame.add(emptyPanel);
-		mainFrame.setJMenuBar(mb);
-		
 		mainFrame.setSize(frameWidth,baseHeight*4);
-		mainFrame.setLocation(xLocation, yLocation);
-		
-		mainFrame.setVisible(true);
-		
-	}//buildGuiNoMacros
+	}//addNoMacrosContent
 	
 	/*
 	* ---------------------------------------------------
 	* buildBtnPanel()
 	* 
-	* Create JPanel with macro buttons for buildGui()
+	* Create JPanel with macro buttons for buildGroupPanel()
 	* 
+	* input macro[]: valid macros to create buttons for
 	* returns JPanel: JPanel with macro buttons
 	* ---------------------------------------------------
 	*/
-	private JPanel buildBtnPanel(){
+	private JPanel buildBtnPanel(macro[] macros){
 		
 		btnPanel=new JPanel();
 		btnPanel.setLayout(new GridBagLayout());
@@ -371,20 +660,21 @@ public class macro_manager implements PlugIn{
 		c.insets=new Insets(1,2,1,2);//padding around all buttons
 		
 		//button arrays
-		JButton[] btns = new JButton[macroArray.length];
-		JButton[] editBtns = new JButton[macroArray.length];
+		JButton[] btns = new JButton[macros.length];
+		JButton[] editBtns = new JButton[macros.length];
 		
 		//create pair of launch and edit buttons for each macro in list
-		for(int row = 0; row < macroArray.length; row++){
-			final String tmpMacroPath = macroArray[row].getPath();
+		for(int row = 0; row < macros.length; row++){
+			final String tmpMacroPath = macros[row].getPath();
+			final byte[] tmpJournalName = runJournal.encodeName(macros[row].getName());//encoded once, not per run
 			File tmpFile = new File(tmpMacroPath);
 			
 			//create launch button
-			btns[row]=new JButton(macroArray[row].getName());
+			btns[row]=new JButton(macros[row].getName());
 			btns[row].addActionListener(new ActionListener(){  
 				public void actionPerformed(ActionEvent e){  
 					//execute macro from path
-					IJ.runMacroFile(tmpMacroPath);
+					runMacro(tmpMacroPath, tmpJournalName);
 				}  
 			});
 			
@@ -417,6 +707,63 @@ public class macro_manager implements PlugIn{
 		return btnPanel;
 	}//buildBtnPanel()
 	
+	/*
+	* ---------------------------------------------------
+	* runMacro()
+	* 
+	* Execute macro from path through launcher, which records launch and outcome in run journal
+	* The macro and all macros it runs are preloaded first, on a background thread so that
+	* slow shares do not block the GUI; if any of them are missing the user is asked whether to run anyway
+	* The macro then runs on the event thread, as before
+	* 
+	* input String: path to macro
+	* 		byte[]: macro name encoded by runJournal.encodeName()
+	* ---------------------------------------------------
+	*/
+	private void runMacro(final String macroPath, final byte[] journalName){
+		new SwingWorker<String[], Object>(){
+			protected String[] doInBackground(){
+				return launcher.preload(macroPath);
+			}
+			protected void done(){
+				String[] missing = new String[0];
+				try{
+					missing = get();
+				}
+				catch(Exception e6){
+					//preload only speeds up and checks the launch, run macro anyway
+					IJ.log("Macro Manager: could not preload " + macroPath + ": " + e6);
+				}
+				runPreloadedMacro(macroPath, journalName, missing);
+			}
+		}.execute();
+	}//runMacro
+	
+	/*
+	* ---------------------------------------------------
+	* runPreloadedMacro()
+	* 
+	* Second half of runMacro(), on the event thread: ask about missing dependencies and launch
+	* 
+	* input String: path to macro
+	* 		byte[]: macro name encoded by runJournal.encodeName()
+	* 		String[]: paths of missing macros found by preload
+	* ---------------------------------------------------
+	*/
+	private void runPreloadedMacro(String macroPath, byte[] journalName, String[] missing){
+		if(missing.length > 0){
+			String missingList = "";
+			for(int i=0; i<missing.length; i++)
+				missingList += "\n" + missing[i];
+			int run = JOptionPane.showConfirmDialog(mainFrame, "Macro " + new File(macroPath).getName() + 
+				" depends on macros that could not be found:" + missingList + "\n\nRun anyway?", 
+				"Missing dependencies", JOptionPane.YES_NO_OPTION);
+			if(run != JOptionPane.YES_OPTION)
+				return;
+		}
+		launcher.launch(macroPath, journalName);
+	}//runPreloadedMacro
+	
 	/*
 	* ---------------------------------------------------
 	* buildJMenuBar()
@@ -437,6 +784,8 @@ public class macro_manager implements PlugIn{
 		JMenuItem itemDelMacro;
 		JMenuItem itemEditSettings;
 		JMenuItem itemRefresh;
+		JMenuItem itemJournal;
+		JMenuItem itemDependencies;
 		JMenuItem itemNewCode;
 		
 		//create menu items
@@ -473,11 +822,29 @@ public class macro_manager implements PlugIn{
 			}
 		});
 		
+		//'show run journal' menu item
+		itemJournal = new JMenuItem("Show run journal");
+		itemJournal.addActionListener(new ActionListener() { 
+			public void actionPerformed(ActionEvent eJournal){
+				showJournal();
+			}
+		});
+		
+		//'show dependencies' menu item
+		itemDependencies = new JMenuItem("Show dependencies");
+		itemDependencies.addActionListener(new ActionListener() { 
+			public void actionPerformed(ActionEvent eDependencies){
+				showTextWindow("Macro manager dependencies", dependencies.describe(macroArray));
+			}
+		});
+		
 		//add menu items to menu
 		filemenu.add(itemAddMacro);
 		filemenu.add(itemDelMacro);
 		filemenu.add(itemEditSettings);
 		filemenu.add(itemRefresh);
+		filemenu.add(itemJournal);
+		filemenu.add(itemDependencies);
 		
 		/*
 		* Create help menu
@@ -531,14 +898,15 @@ public class macro_manager implements PlugIn{
 		//select file, write file path to settings file
 		int returnVal = fc.showOpenDialog(frameOpen);
 			if(returnVal == JFileChooser.APPROVE_OPTION){
-				File file = fc.getSelectedFile();
+				final File file = fc.getSelectedFile();
+				final String group = selectedGroup;
 				try{
-					FileWriter fw = new FileWriter (settingsPath, true);//create filewriter. append = true
-					PrintWriter pw = new PrintWriter(fw);//create PrintWriter, acts as interface to fileWriter
-					
-					pw.print(file.getAbsolutePath());//print on new line, no carriage return at end
-					pw.println("");//new line
-					pw.close();
+					//add path to shown group in current lines, which may include macros added by other instances
+					settings.update(new settingsStore.edit(){
+						public String[] apply(String[] lines){
+							return macroGroup.addEntry(lines, group, file.getAbsolutePath());
+						}
+					});
 					
 					//refresh GUI
 					refreshGui();
@@ -564,10 +932,18 @@ public class macro_manager implements PlugIn{
 	*/
 	private void deleteMacro(){
 		
-		//Generate dialogbox, populate with macro labels
+		//Generate dialogbox, populate with macro labels, prefixed with group name if there are several groups
 		GenericDialog deleteDialog = new GenericDialog("Select macros to delete");
-		for(int i=0; i<macroArray.length;i++){
-			deleteDialog.addCheckbox(macroArray[i].getName(), false);	
+		//keys are collected before the dialog is shown: the settings poller may replace groups while it is open
+		Vector<String> macroKeys = new Vector<String>();//in the same order as the checkboxes
+		for(int i=0; i<groups.length;i++){
+			for(int j=0; j<groups[i].macros.length;j++){
+				String label = groups[i].macros[j].getName();
+				if(groups.length > 1)
+					label = groups[i].name + ": " + label;
+				deleteDialog.addCheckbox(label, false);
+				macroKeys.add(macroGroup.key(groups[i].name, groups[i].macros[j].getPath()));
+			}
 		}
 		deleteDialog.showDialog();	
 		
@@ -575,105 +951,68 @@ public class macro_manager implements PlugIn{
 		if(deleteDialog.wasOKed()){
 			Vector macrosToDelete = deleteDialog.getCheckboxes();
 			
-			//count number of unchecked boxes (macros to save)
-			int noMacrosToKeep=0;
+			//collect keys of checked macros
+			final HashSet<String> keysToDelete = new HashSet<String>();
 			for(int k=0;k<macrosToDelete.size();k++){
 				Checkbox chk = (Checkbox)macrosToDelete.get(k);//retrieve checkbox from Vector
-				if(!chk.getState())
-				//checkbox was not checked => keep macro
-					noMacrosToKeep++;
+				if(chk.getState())
+				//checkbox was checked => delete macro
+					keysToDelete.add(macroKeys.get(k));
 			}
 			
-			if(noMacrosToKeep==0){
-				//delete all macros
-				writeMacroToFile(" ", false); //overwrite file with empty string
-			}else{
-				//save at least one macro
-				String[] macrosToSave = new String[noMacrosToKeep];
-				int index=0;
-				boolean first = true;//first macro to save: clear settings file
-				for(int j=0;j<macrosToDelete.size();j++){
-					Checkbox chk = (Checkbox)macrosToDelete.get(j);//retrieve checkbox from Vector
-					if(!chk.getState()){
-						//Store paths of macros to save in array//send array to writer to store in settings file
-						if(first){
-							//first macro to save, clear file and add macro
-							writeMacroToFile(findMacro(chk.getLabel()).getPath(), false);
-							first=!first;
-						}
-						else{
-							//not first macro, append to file
-							writeMacroToFile(findMacro(chk.getLabel()).getPath(), true);
-						}//else
-					}//if first
-				}//for
-			}//else
+			//remove checked macros from current lines, keeping lines added by other instances meanwhile
+			try{
+				settings.update(new settingsStore.edit(){
+					public String[] apply(String[] lines){
+						return macroGroup.removeEntries(lines, keysToDelete);
+					}
+				});
+			}
+			catch(IOException e4){
+				IJ.showMessage("Exception thrown, trying to write to file " + settingsPath + ". In function deleteMacro()");
+			}
 			//update GUI
 			refreshGui();
 		}//if ok was clicked
 	}
 	
-	/* 
-	* ---------------------------------------------------
-	* findMacro()
-	* 
-	* Find macro in macroArray based on its name. 
-	* Use with delete function to find its path
-	* Will return first occurence
-	* 
-	* input String: name of macro
-	* returns macro
-	* ---------------------------------------------------
-	*/
-	private macro findMacro(String name){
-		for(int i=0; i<macroArray.length;i++){
-			if (macroArray[i].getName() == name)
-				return macroArray[i];
-		}
-		return null;
-		
-	}//findmacro
-	
 	/*
-	---------------------------------------------------
-	* writeMacroToFile()
+	* ---------------------------------------------------
+	* showJournal()
 	* 
-	* Write macro path to file, single macro
+	* Show timeline of recorded macro runs in a scrollable window
 	* 
-	* input String: macro path to write to file
-	* 		Boolean:	true: append to file; 
-	* 					false: create new file
 	---------------------------------------------------
-	*/	
-	private void writeMacroToFile(String path, Boolean append){
-		try{
-			FileWriter fw = new FileWriter (settingsPath, append);//create filewriter
-			PrintWriter pw = new PrintWriter(fw);//create PrintWriter, acts as interface to fileWriter
-			pw.print(path);//print on new line, no carriage return at end
-			pw.println("");//new line
-			pw.close();
-		}
-		catch(IOException e4){
-			IJ.showMessage("Exception thrown, trying to write macroArray to file. In function writeMacroToFile(String path, Boolean append))");
+	*/
+	private void showJournal(){
+		if(journal == null){
+			IJ.showMessage("Run journal " + journalPath + " is not available.");
+			return;
 		}
-	}
+		showTextWindow("Macro manager run journal - " + journal.getPath(), journal.readTimeline());
+	}//showJournal
 	
 	/*
 	* ---------------------------------------------------
-	* writeMacroArrayFile()
+	* showTextWindow()
 	* 
-	* Write entire macroarray to the settingsfile by looping array and calling writeMacroToFile()
+	* Show read-only text in a scrollable window
 	* 
+	* input String: window title
+	* 		String: text to show
 	---------------------------------------------------
-	*/	
-	private void writeMacroArrayToFile(){
-		//write first macro to fresh file
-		writeMacroToFile(macroArray[0].getPath(), false);
-		//write subsequent macros to file while appending
-		for(int i=1; i<macroArray.length;i++){
-			writeMacroToFile(macroArray[i].getPath(), true);
-		}
-	}
+	*/
+	private void showTextWindow(String title, String text){
+		JTextArea textArea = new JTextArea(text);
+		textArea.setEditable(false);
+		textArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+		
+		JFrame textFrame = new JFrame(title);
+		textFrame.add(new JScrollPane(textArea));
+		textFrame.setSize(frameWidth*2, baseHeight*6);
+		textFrame.setLocationRelativeTo(mainFrame);
+		textFrame.setVisible(true);
+	}//showTextWindow
 	
 	/*
 	* ---------------------------------------------------
@@ -710,9 +1049,20 @@ public class macro_manager implements PlugIn{
 	"File=>Edit macro list \n" +
 	"Shows txt file with macro paths. Can be used to add or\n" + 
 	"delete manually. Use \'refresh GUI\'  to see changes.\n"+
+	"A line [Group name] starts a group, shown as a tab.\n"+
+	"A line Name | path gives a macro a name of its own;\n"+
+	"the path must be absolute.\n"+
 	" \n"+
 	"File=>Refresh GUI \n" +
-	"Updates GUI by re-reading settings file \n";
+	"Updates GUI by re-reading settings file \n"+
+	"Changes made by other ImageJ instances sharing the settings \n"+
+	"file are picked up automatically.\n"+
+	" \n"+
+	"File=>Show run journal \n" +
+	"Shows when macros were launched, completed, failed or canceled \n"+
+	" \n"+
+	"File=>Show dependencies \n" +
+	"Shows which macros each macro runs, and flags missing ones \n";
 
 	IJ.showMessage("Instructions",instructions);
 	
@@ -769,4 +1119,1530 @@ class macro{
 	}
 		
 	
-}//macro class
\ No newline at end of file
+}//macro class
+/*
+ * ---------------------------------------------------
+ * Class macroLauncher
+ * 
+ * Execution path of a macro launch, without GUI:
+ * preload macro and its dependencies, run it from the preloaded source, record launch and outcome in run journal
+ * Used by the launch buttons and by macroBenchmark
+ * -----------------------------------------------------
+ */
+class macroLauncher{
+	
+	private final dependencyGraph dependencies;
+	private final runJournal journal;//null if runs are not recorded
+	
+	//constructor
+	macroLauncher(dependencyGraph dependencies, runJournal journal){
+		this.dependencies=dependencies;
+		this.journal=journal;
+	}
+	
+	/*
+	* ---------------------------------------------------
+	* preload()
+	* 
+	* Read macro and the macros it runs into the dependency cache, unless unchanged
+	* May be called on any thread
+	* 
+	* input String: path to macro
+	* returns String[]: paths of missing macros, empty if none
+	* ---------------------------------------------------
+	*/
+	String[] preload(String macroPath){
+		return dependencies.preload(macroPath);
+	}
+	
+	/*
+	* ---------------------------------------------------
+	* launch()
+	* 
+	* Execute macro and record launch and outcome in run journal
+	* A macro preloaded by preload() runs from its cached source, without reading the file again;
+	* macros it runs itself are still read by ImageJ. Other macros run from their file
+	* ImageJ returns "[aborted]" both when the user aborted the macro and when the macro
+	* stopped with an error; an error also sets a new Interpreter error message
+	* A macro file that does not exist is not run and counts as failed
+	* 
+	* input String: path to macro
+	* 		byte[]: macro name encoded by runJournal.encodeName()
+	* returns byte: outcome, runJournal.COMPLETE, FAIL or CANCEL
+	* ---------------------------------------------------
+	*/
+	byte launch(String macroPath, byte[] journalName){
+		record(runJournal.LAUNCH, journalName, 0);
+		long start = System.currentTimeMillis();
+		String code = dependencies.cachedCode(macroPath);
+		if(code == null && !new File(macroPath).isFile()){
+			record(runJournal.FAIL, journalName, 0);
+			return runJournal.FAIL;
+		}
+		
+		String errorBefore = Interpreter.getErrorMessage();
+		byte outcome = runJournal.FAIL;
+		try{
+			String result = code != null ? IJ.runMacro(code, "") : IJ.runMacroFile(macroPath);
+			if("[aborted]".equals(result)){
+				//compare references: the same error text twice is still two messages
+				String errorAfter = Interpreter.getErrorMessage();
+				outcome = (errorAfter != null && errorAfter != errorBefore) ? runJournal.FAIL : runJournal.CANCEL;
+			}
+			else
+				outcome = runJournal.COMPLETE;
+		}
+		finally{
+			//outcome is still FAIL if the run threw
+			record(outcome, journalName, System.currentTimeMillis() - start);
+		}
+		return outcome;
+	}//launch
+	
+	//record event if runs are recorded
+	private void record(byte event, byte[] journalName, long durationMillis){
+		if(journal != null)
+			journal.record(event, journalName, durationMillis);
+	}
+	
+}//macroLauncher class
+
+/*
+ * ---------------------------------------------------
+ * Class runJournal
+ * 
+ * Append-only journal of macro launches, completions, failures and cancellations
+ * Stored in a memory-mapped file of fixed size, used as a ring buffer of binary records
+ * When the buffer is full the oldest records are overwritten
+ * 
+ * File layout:
+ * 		header (HEADER_SIZE bytes): magic, format version, record size, capacity
+ * 		capacity records (RECORD_SIZE bytes each):
+ * 			long	stamp: sequence number + 1 of the record, 0 while empty or being written
+ * 			long	time of event, ms since epoch
+ * 			long	duration of run in ms (completion, failure, cancellation), otherwise 0
+ * 			byte	event type
+ * 			byte	length of name in bytes
+ * 			byte[]	macro name, UTF-8, truncated to NAME_SIZE bytes
+ * 
+ * record() does not allocate and does not lock: each writer claims its own slot
+ * through an atomic sequence counter and writes directly into the mapped file
+ * 
+ * The sequence counter only lives in one JVM, so a journal file must have a single writing process
+ * open() takes an exclusive OS lock on the file for the lifetime of the JVM; a second ImageJ instance
+ * on the same machine gets the next free file, e.g. macroManagerJournal_host_2.bin
+ * Journal files must be on a local disk: memory-mapped writes are not kept consistent over network shares
+ * -----------------------------------------------------
+ */
+class runJournal{
+	
+	//event types
+	static final byte LAUNCH = 1;
+	static final byte COMPLETE = 2;
+	static final byte FAIL = 3;
+	static final byte CANCEL = 4;
+	static final String[] EVENT_NAMES = {"?", "LAUNCH", "COMPLETE", "FAIL", "CANCEL"};
+	
+	//file layout
+	static final int MAGIC = 0x4D4D4A31;//"MMJ1"
+	static final int FORMAT_VERSION = 1;
+	static final int HEADER_SIZE = 64;
+	static final int NAME_SIZE = 64;
+	static final int RECORD_SIZE = 8 + 8 + 8 + 1 + 1 + 6 + NAME_SIZE;//96 bytes, 6 bytes padding
+	static final int DEFAULT_CAPACITY = 4096;//number of records kept
+	static final int MAX_INSTANCES = 9;//journal files tried per path when others are locked
+	
+	//offsets within a record
+	static final int OFF_STAMP = 0;
+	static final int OFF_TIME = 8;
+	static final int OFF_DURATION = 16;
+	static final int OFF_EVENT = 24;
+	static final int OFF_NAME_LENGTH = 25;
+	static final int OFF_NAME = 32;
+	
+	//journals opened by this JVM, shared by all plugin windows so that sequence numbers stay unique
+	private static final HashMap<String, runJournal> openJournals = new HashMap<String, runJournal>();
+	
+	private final String path;//file actually used, see open()
+	private final RandomAccessFile file;//kept open to hold the lock
+	private final MappedByteBuffer buffer;
+	private final int capacity;
+	private final AtomicLong nextSequence;
+	
+	//constructor, use open() to get a journal
+	private runJournal(String path, RandomAccessFile file, MappedByteBuffer buffer, int capacity, long nextSequence){
+		this.path=path;
+		this.file=file;
+		this.buffer=buffer;
+		this.capacity=capacity;
+		this.nextSequence=new AtomicLong(nextSequence);
+	}
+	
+	/*
+	* ---------------------------------------------------
+	* defaultPath()
+	* 
+	* Journal path for this machine: in the user's home folder, named after the host
+	* 
+	* returns String
+	* ---------------------------------------------------
+	*/
+	static String defaultPath(){
+		String host;
+		try{
+			host = InetAddress.getLocalHost().getHostName();
+		}
+		catch(IOException e){
+			host = "localhost";
+		}
+		host = host.replaceAll("[^A-Za-z0-9._-]", "_");
+		return new File(System.getProperty("user.home"), "macroManagerJournal_" + host + ".bin").getPath();
+	}
+	
+	/*
+	* ---------------------------------------------------
+	* open()
+	* 
+	* Open journal file, create and size it if it does not exist
+	* If another process holds the file, the next free file path_2.bin ... path_9.bin is used
+	* An existing file with an unknown format is overwritten
+	* 
+	* input String: path to journal file
+	* returns runJournal
+	* throws IOException: if the file can not be opened, or all files are in use
+	* ---------------------------------------------------
+	*/
+	static synchronized runJournal open(String path) throws IOException{
+		runJournal journal = openJournals.get(path);
+		if(journal != null)
+			return journal;
+		
+		for(int instance=1; instance<=MAX_INSTANCES && journal == null; instance++)
+			journal = tryOpen(instancePath(path, instance));
+		if(journal == null)
+			throw new IOException("Run journal " + path + " and its alternatives are in use by other processes");
+		openJournals.put(path, journal);
+		return journal;
+	}//open
+	
+	//path of journal file for given instance number; the first instance uses path itself
+	private static String instancePath(String path, int instance){
+		if(instance == 1)
+			return path;
+		int dot = path.lastIndexOf('.');
+		if(dot <= path.lastIndexOf(File.separatorChar))
+			return path + "_" + instance;
+		return path.substring(0, dot) + "_" + instance + path.substring(dot);
+	}
+	
+	/*
+	* ---------------------------------------------------
+	* tryOpen()
+	* 
+	* Lock and map journal file for open()
+	* 
+	* input String: path to journal file
+	* returns runJournal: null if another process, or another copy of the plugin in this JVM, holds the lock
+	* throws IOException
+	* ---------------------------------------------------
+	*/
+	private static runJournal tryOpen(String path) throws IOException{
+		int capacity = DEFAULT_CAPACITY;
+		long size = HEADER_SIZE + (long)RECORD_SIZE*capacity;
+		RandomAccessFile raf = new RandomAccessFile(path, "rw");
+		boolean keepOpen = false;
+		try{
+			FileChannel channel = raf.getChannel();
+			//lock is held until the JVM exits
+			//a lock held in this JVM, e.g. by an earlier class loader after Compile and Run, throws instead of returning null
+			try{
+				if(channel.tryLock() == null)
+					return null;
+			}
+			catch(OverlappingFileLockException e){
+				return null;
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			boolean valid = buffer.getInt(0) == MAGIC && buffer.getInt(4) == FORMAT_VERSION &&
+					buffer.getInt(8) == RECORD_SIZE && buffer.getInt(12) == capacity;
+			if(!valid){
+				//new or foreign file, clear and write header
+				for(int i=0; i<size; i++)
+					buffer.put(i, (byte)0);
+				buffer.putInt(0, MAGIC);
+				buffer.putInt(4, FORMAT_VERSION);
+				buffer.putInt(8, RECORD_SIZE);
+				buffer.putInt(12, capacity);
+			}
+			//continue after the newest record already in the file
+			long next = 0;
+			for(int slot=0; slot<capacity; slot++){
+				long stamp = buffer.getLong(HEADER_SIZE + slot*RECORD_SIZE + OFF_STAMP);
+				if(stamp > next)
+					next = stamp;
+			}
+			keepOpen = true;
+			return new runJournal(path, raf, buffer, capacity, next);
+		}
+		finally{
+			if(!keepOpen)
+				raf.close();
+		}
+	}//tryOpen
+	
+	//path of the journal file in use
+	String getPath(){
+		return path;
+	}
+	
+	/*
+	* ---------------------------------------------------
+	* encodeName()
+	* 
+	* Encode macro name for record(), truncated to fit in a record
+	* Truncation happens at a character boundary, never inside a multi-byte character
+	* Call once per macro when the GUI is built, not for every event
+	* 
+	* input String: macro name
+	* returns byte[]: UTF-8 encoded name
+	* ---------------------------------------------------
+	*/
+	static byte[] encodeName(String name){
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		if(bytes.length <= NAME_SIZE)
+			return bytes;
+		//back up past continuation bytes (10xxxxxx) to the start of the character that does not fit
+		int length = NAME_SIZE;
+		while(length > 0 && (bytes[length] & 0xC0) == 0x80)
+			length--;
+		return Arrays.copyOf(bytes, length);
+	}
+	
+	/*
+	* ---------------------------------------------------
+	* record()
+	* 
+	* Write event to the next slot in the ring buffer
+	* Does not allocate or block
+	* 
+	* input byte: event type, one of LAUNCH, COMPLETE, FAIL, CANCEL
+	* 		byte[]: macro name from encodeName()
+	* 		long: duration of run in ms, 0 for LAUNCH
+	* ---------------------------------------------------
+	*/
+	void record(byte event, byte[] name, long durationMillis){
+		long sequence = nextSequence.getAndIncrement();
+		int offset = HEADER_SIZE + (int)(sequence % capacity)*RECORD_SIZE;
+		
+		//mark slot as being written, fill it, then publish it with its stamp
+		buffer.putLong(offset + OFF_STAMP, 0L);
+		buffer.putLong(offset + OFF_TIME, System.currentTimeMillis());
+		buffer.putLong(offset + OFF_DURATION, durationMillis);
+		buffer.put(offset + OFF_EVENT, event);
+		int length = Math.min(name.length, NAME_SIZE);
+		buffer.put(offset + OFF_NAME_LENGTH, (byte)length);
+		for(int i=0; i<length; i++)
+			buffer.put(offset + OFF_NAME + i, name[i]);
+		buffer.putLong(offset + OFF_STAMP, sequence + 1);
+	}//record
+	
+	/*
+	* ---------------------------------------------------
+	* readTimeline()
+	* 
+	* Decode journal into a readable timeline, oldest event first
+	* Slots that are empty or being written are skipped
+	* 
+	* returns String: one line per event
+	* ---------------------------------------------------
+	*/
+	String readTimeline(){
+		//collect sequence numbers of all published records
+		long[] stamps = new long[capacity];
+		int[] slots = new int[capacity];
+		int count = 0;
+		for(int slot=0; slot<capacity; slot++){
+			long stamp = buffer.getLong(HEADER_SIZE + slot*RECORD_SIZE + OFF_STAMP);
+			if(stamp > 0){
+				stamps[count] = stamp;
+				slots[count] = slot;
+				count++;
+			}
+		}
+		
+		//order by sequence number; records are already ordered unless the buffer has wrapped
+		Integer[] order = new Integer[count];
+		for(int i=0; i<count; i++)
+			order[i] = i;
+		final long[] sortStamps = stamps;
+		Arrays.sort(order, new Comparator<Integer>(){
+			public int compare(Integer a, Integer b){
+				return Long.compare(sortStamps[a], sortStamps[b]);
+			}
+		});
+		
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		StringBuilder sb = new StringBuilder();
+		for(int i=0; i<count; i++){
+			int offset = HEADER_SIZE + slots[order[i]]*RECORD_SIZE;
+			long time = buffer.getLong(offset + OFF_TIME);
+			long duration = buffer.getLong(offset + OFF_DURATION);
+			int event = buffer.get(offset + OFF_EVENT);
+			int length = buffer.get(offset + OFF_NAME_LENGTH) & 0xFF;
+			byte[] name = new byte[Math.min(length, NAME_SIZE)];
+			for(int j=0; j<name.length; j++)
+				name[j] = buffer.get(offset + OFF_NAME + j);
+			//record was overwritten while reading, skip it
+			if(buffer.getLong(offset + OFF_STAMP) != stamps[order[i]])
+				continue;
+			
+			String eventName = (event > 0 && event < EVENT_NAMES.length) ? EVENT_NAMES[event] : EVENT_NAMES[0];
+			sb.append(dateFormat.format(new Date(time)));
+			sb.append("  ").append(String.format("%-9s", eventName));
+			sb.append(new String(name, StandardCharsets.UTF_8));
+			if(event != LAUNCH)
+				sb.append("  (").append(duration).append(" ms)");
+			sb.append("\n");
+		}
+		if(count == 0)
+			sb.append("No macro runs recorded.\n");
+		return sb.toString();
+	}//readTimeline
+	
+}//runJournal class
+
+/*
+ * ---------------------------------------------------
+ * Class dependencyGraph
+ * 
+ * Static scan of macro sources for macros they run, building a dependency graph
+ * Recognized references, with string literal paths only:
+ * 		runMacro("path") and runMacro("path", arg)
+ * 		eval(File.openAsString("path"))
+ * 		run("Run...", "run=[path]")
+ * Comments are ignored. Relative paths are resolved against ImageJ's macros folder,
+ * like ImageJ does, and ".txt" or ".ijm" is tried when the extension is missing
+ * 
+ * Sources are cached together with their references and only re-read when the file's
+ * size or modification time changes. macroLauncher runs the launched macro from this
+ * cache; macros it runs through runMacro() etc. are read again by the interpreter,
+ * but reading them here first reports missing ones before the run starts
+ * -----------------------------------------------------
+ */
+class dependencyGraph{
+	
+	static final Pattern RUN_MACRO = Pattern.compile("runMacro\\s*\\(\\s*\"((?:[^\"\\\\]|\\\\.)+)\"");
+	static final Pattern EVAL_FILE = Pattern.compile("eval\\s*\\(\\s*File\\.openAsString\\s*\\(\\s*\"((?:[^\"\\\\]|\\\\.)+)\"");
+	static final Pattern RUN_COMMAND = Pattern.compile("run\\s*\\(\\s*\"Run\\.\\.\\.\"\\s*,\\s*\"run=\\[((?:[^\\]\"])+)\\]");
+	static final Pattern[] REFERENCES = {RUN_MACRO, EVAL_FILE, RUN_COMMAND};
+	
+	/*
+	 * Cached macro source with resolved references and file status at the time it was read
+	 */
+	static class source{
+		String path;
+		long lastModified;
+		long length;
+		String code;
+		String[] references;//resolved paths, in order of first occurrence
+	}
+	
+	private final String macroDir;
+	//concurrent so that launches on several threads do not wait for each other, see load()
+	private final ConcurrentHashMap<String, source> cache = new ConcurrentHashMap<String, source>();
+	
+	//constructor
+	//input String: ImageJ's macros folder, used to resolve relative paths
+	dependencyGraph(String macroDir){
+		this.macroDir=macroDir;
+	}
+	
+	/*
+	* ---------------------------------------------------
+	* load()
+	* 
+	* Get source of macro from cache, reading and scanning it if it is new or changed
+	* Takes no lock: if two threads load the same changed file, both read it and the last one is kept
+	* 
+	* input String: path to macro
+	* returns source: null if file does not exist or can not be read
+	* ---------------------------------------------------
+	*/
+	source load(String path){
+		File file = new File(path);
+		if(!file.isFile()){
+			cache.remove(path);
+			return null;
+		}
+		source cached = cache.get(path);
+		if(cached != null && cached.lastModified == file.lastModified() && cached.length == file.length())
+			return cached;
+		
+		source src = new source();
+		src.path=path;
+		src.lastModified=file.lastModified();
+		src.length=file.length();
+		try{
+			src.code = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+		}
+		catch(IOException e){
+			cache.remove(path);
+			return null;
+		}
+		src.references=scan(src.code);
+		cache.put(path, src);
+		return src;
+	}//load
+	
+	/*
+	* ---------------------------------------------------
+	* scan()
+	* 
+	* Find macros referenced by macro code
+	* 
+	* input String: macro code
+	* returns String[]: resolved paths of referenced macros
+	* ---------------------------------------------------
+	*/
+	String[] scan(String code){
+		code = stripComments(code);
+		LinkedHashSet<String> references = new LinkedHashSet<String>();
+		for(int i=0; i<REFERENCES.length; i++){
+			Matcher m = REFERENCES[i].matcher(code);
+			while(m.find())
+				references.add(resolve(unescape(m.group(1))));
+		}
+		return references.toArray(new String[references.size()]);
+	}
+	
+	/*
+	* ---------------------------------------------------
+	* stripComments()
+	* 
+	* Remove line comments and block comments from macro code, leaving string literals intact
+	* Line breaks are kept
+	* 
+	* input String: macro code
+	* returns String: code without comments
+	* ---------------------------------------------------
+	*/
+	String stripComments(String code){
+		StringBuilder sb = new StringBuilder(code.length());
+		char quote = 0;//quote character of the string literal we are in, 0 outside strings
+		int i = 0;
+		while(i < code.length()){
+			char ch = code.charAt(i);
+			if(quote != 0){
+				//inside string literal, copy escapes as they are
+				sb.append(ch);
+				if(ch == '\\' && i+1 < code.length())
+					sb.append(code.charAt(++i));
+				else if(ch == quote || ch == '\n')
+					quote = 0;
+				i++;
+			}
+			else if(ch == '"' || ch == '\''){
+				quote = ch;
+				sb.append(ch);
+				i++;
+			}
+			else if(code.startsWith("//", i)){
+				while(i < code.length() && code.charAt(i) != '\n')
+					i++;
+			}
+			else if(code.startsWith("/*", i)){
+				int end = code.indexOf("*/", i+2);
+				end = end < 0 ? code.length() : end+2;
+				for(int j=i; j<end; j++){
+					if(code.charAt(j) == '\n')
+						sb.append('\n');
+				}
+				i = end;
+			}
+			else{
+				sb.append(ch);
+				i++;
+			}
+		}
+		return sb.toString();
+	}//stripComments
+	
+	/*
+	* ---------------------------------------------------
+	* unescape()
+	* 
+	* Remove escapes from macro string literal, e.g. "C:\\macros" => C:\macros
+	* ---------------------------------------------------
+	*/
+	private String unescape(String literal){
+		StringBuilder sb = new StringBuilder();
+		for(int i=0; i<literal.length(); i++){
+			char ch = literal.charAt(i);
+			if(ch == '\\' && i+1 < literal.length())
+				ch = literal.charAt(++i);
+			sb.append(ch);
+		}
+		return sb.toString();
+	}
+	
+	/*
+	* ---------------------------------------------------
+	* resolve()
+	* 
+	* Resolve referenced macro path the way ImageJ's runMacroFile() does:
+	* relative to the macros folder, trying ".txt" and ".ijm" if there is no extension
+	* 
+	* input String: path as written in macro
+	* returns String: resolved path, the first candidate if none exists
+	* ---------------------------------------------------
+	*/
+	String resolve(String path){
+		File file = new File(path);
+		if(!file.isAbsolute() && macroDir != null)
+			file = new File(macroDir, path);
+		if(file.isFile() || file.getName().indexOf('.') >= 0)
+			return file.getPath();
+		String[] extensions = {".txt", ".ijm"};
+		for(int i=0; i<extensions.length; i++){
+			File candidate = new File(file.getPath() + extensions[i]);
+			if(candidate.isFile())
+				return candidate.getPath();
+		}
+		return file.getPath();
+	}//resolve
+	
+	/*
+	* ---------------------------------------------------
+	* preload()
+	* 
+	* Load macro and everything it references, directly or indirectly, into the cache
+	* Unchanged files are not read again
+	* 
+	* input String: path to macro
+	* returns String[]: paths of missing macros in the closure, empty if none
+	* ---------------------------------------------------
+	*/
+	String[] preload(String path){
+		LinkedHashSet<String> visited = new LinkedHashSet<String>();
+		LinkedHashSet<String> missing = new LinkedHashSet<String>();
+		ArrayDeque<String> queue = new ArrayDeque<String>();
+		queue.add(path);
+		visited.add(path);
+		while(!queue.isEmpty()){
+			String current = queue.poll();
+			source src = load(current);
+			if(src == null){
+				missing.add(current);
+				continue;
+			}
+			for(int i=0; i<src.references.length; i++){
+				if(visited.add(src.references[i]))
+					queue.add(src.references[i]);
+			}
+		}
+		return missing.toArray(new String[missing.size()]);
+	}//preload
+	
+	/*
+	* ---------------------------------------------------
+	* cachedCode()
+	* 
+	* Get cached source of macro, as read by the last preload(); does not touch the file
+	* 
+	* input String: path to macro
+	* returns String: null if macro is not cached
+	* ---------------------------------------------------
+	*/
+	String cachedCode(String path){
+		source src = cache.get(path);
+		return src == null ? null : src.code;
+	}
+	
+	/*
+	* ---------------------------------------------------
+	* describe()
+	* 
+	* Describe dependency graph of the given macros as an indented tree
+	* Missing macros are flagged, macros already shown are not expanded again
+	* 
+	* input macro[]: macros to describe
+	* returns String
+	* ---------------------------------------------------
+	*/
+	String describe(macro[] macros){
+		StringBuilder sb = new StringBuilder();
+		int missingCount = 0;
+		for(int i=0; i<macros.length; i++){
+			preload(macros[i].getPath());
+			missingCount += describe(sb, macros[i].getPath(), macros[i].getName(), 0, new HashSet<String>());
+		}
+		sb.append("\n").append(missingCount == 0 ? "No missing dependencies." : missingCount + " missing dependencies.").append("\n");
+		return sb.toString();
+	}
+	
+	//append tree for one macro, returns number of missing macros found
+	private int describe(StringBuilder sb, String path, String name, int depth, HashSet<String> shown){
+		for(int i=0; i<depth; i++)
+			sb.append("    ");
+		sb.append(name);
+		source src = cache.get(path);
+		if(src == null){
+			sb.append("  MISSING: ").append(path).append("\n");
+			return 1;
+		}
+		if(!shown.add(path)){
+			sb.append("  (see above)\n");
+			return 0;
+		}
+		sb.append("\n");
+		int missingCount = 0;
+		for(int i=0; i<src.references.length; i++)
+			missingCount += describe(sb, src.references[i], new File(src.references[i]).getName(), depth+1, shown);
+		return missingCount;
+	}
+	
+}//dependencyGraph class
+
+/*
+ * ---------------------------------------------------
+ * Class settingsStore
+ * 
+ * Settings file that can be shared by several ImageJ instances, e.g. on a network share
+ * 
+ * Writers change the file through update(), which
+ * 		reads the current lines and applies an edit to them
+ * 		tries to take an OS lock on a separate lock file, without waiting for it
+ * 		checks that the file did not change since it was read, otherwise retries
+ * 		writes a temporary file and atomically moves it in place of the settings file
+ * Readers take no lock. Since the file is replaced and not rewritten in place,
+ * they see either the old or the new version, never a half-written one
+ * 
+ * The first line of the file holds a version number, incremented on every update
+ * Files without it, e.g. older or hand-written ones, are version 0
+ * -----------------------------------------------------
+ */
+class settingsStore{
+	
+	static final String VERSION_PREFIX = "#macroManagerSettings version ";
+	static final int MAX_ATTEMPTS = 10;//attempts before update() gives up, about 2.75 s in total
+	static final long RETRY_DELAY = 50;//ms, multiplied by attempt number
+	
+	/*
+	 * Edit applied to the lines of the settings file by update()
+	 * May be applied several times if the file changes concurrently
+	 */
+	interface edit{
+		String[] apply(String[] lines);
+	}
+	
+	/*
+	 * Content of the settings file at one point in time
+	 */
+	static class snapshot{
+		long version;
+		String[] lines;//lines without version line
+		String content;//full file content, used to detect changes
+		long lastModified;
+		long length;
+	}
+	
+	private final File file;
+	private final File lockFile;
+	private volatile snapshot current;
+	
+	//constructor
+	//input String: path to settings file
+	settingsStore(String path){
+		this.file=new File(path);
+		this.lockFile=new File(path + ".lock");
+	}
+	
+	/*
+	* ---------------------------------------------------
+	* read()
+	* 
+	* Get current content of the settings file
+	* File is only read if its size or modification time changed since the last read
+	* 
+	* returns snapshot
+	* throws IOException
+	* ---------------------------------------------------
+	*/
+	snapshot read() throws IOException{
+		snapshot last = current;
+		if(last != null && last.lastModified == file.lastModified() && last.length == file.length())
+			return last;
+		snapshot fresh = readFile();
+		current = fresh;
+		return fresh;
+	}
+	
+	/*
+	* ---------------------------------------------------
+	* poll()
+	* 
+	* Check whether another instance or the user changed the settings file
+	* Costs a file status check unless the file changed
+	* 
+	* returns boolean: true if the lines differ from the previous read
+	* throws IOException
+	* ---------------------------------------------------
+	*/
+	boolean poll() throws IOException{
+		snapshot last = current;
+		snapshot fresh = read();
+		return last == null || !last.content.equals(fresh.content);
+	}
+	
+	/*
+	* ---------------------------------------------------
+	* update()
+	* 
+	* Apply edit to the settings file, see class comment
+	* 
+	* input edit: change to apply to the lines of the file
+	* throws IOException: if file could not be written, or kept changing for MAX_ATTEMPTS attempts
+	* ---------------------------------------------------
+	*/
+	synchronized void update(edit change) throws IOException{
+		IOException lastException = null;
+		for(int attempt=1; attempt<=MAX_ATTEMPTS; attempt++){
+			snapshot base = readFile();
+			String[] lines = change.apply(base.lines);
+			
+			RandomAccessFile lockRaf = new RandomAccessFile(lockFile, "rw");
+			try{
+				//never wait for the lock: a hung client on the share must not freeze the GUI
+				FileLock lock = tryLock(lockRaf);
+				if(lock == null){
+					lastException = new IOException("Lock file " + lockFile + " is held by another instance");
+				}
+				else{
+					try{
+						//optimistic check: file must be unchanged since it was read
+						snapshot check = readFile();
+						if(check.content.equals(base.content)){
+							write(base.version + 1, lines);
+							current = readFile();
+							return;
+						}
+					}
+					finally{
+						lock.release();
+					}
+				}
+			}
+			catch(IOException e){
+				//e.g. file briefly opened by another program on Windows, try again
+				lastException = e;
+			}
+			finally{
+				lockRaf.close();
+			}
+			
+			try{
+				Thread.sleep(RETRY_DELAY*attempt);
+			}
+			catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		throw new IOException("Settings file " + file + " could not be updated", lastException);
+	}//update
+	
+	//lock on lock file, null if another process or another copy of the plugin in this JVM holds it
+	private FileLock tryLock(RandomAccessFile lockRaf) throws IOException{
+		try{
+			return lockRaf.getChannel().tryLock();
+		}
+		catch(OverlappingFileLockException e){
+			return null;
+		}
+	}
+	
+	/*
+	* ---------------------------------------------------
+	* write()
+	* 
+	* Write lines to temporary file and move it in place of the settings file
+	* Call only while holding the lock
+	* ---------------------------------------------------
+	*/
+	private void write(long version, String[] lines) throws IOException{
+		File tmpFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		try{
+			PrintWriter pw = new PrintWriter(tmpFile);//platform charset, like files written by earlier versions
+			pw.println(VERSION_PREFIX + version);
+			for(int i=0; i<lines.length; i++)
+				pw.println(lines[i]);
+			pw.close();
+			if(pw.checkError())
+				throw new IOException("Could not write " + tmpFile);
+			try{
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch(AtomicMoveNotSupportedException e){
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		finally{
+			tmpFile.delete();//no-op if moved
+		}
+	}//write
+	
+	/*
+	* ---------------------------------------------------
+	* readFile()
+	* 
+	* Read and parse settings file in one go, without using the cached snapshot
+	* ---------------------------------------------------
+	*/
+	private snapshot readFile() throws IOException{
+		snapshot s = new snapshot();
+		//stat before reading: if the file is replaced in between, the next read() reads it again
+		s.lastModified=file.lastModified();
+		s.length=file.length();
+		s.content = new String(Files.readAllBytes(file.toPath()), Charset.defaultCharset());
+		
+		String[] lines = s.content.split("\r?\n", -1);
+		int first = 0;
+		if(lines.length > 0 && lines[0].startsWith(VERSION_PREFIX)){
+			try{
+				s.version = Long.parseLong(lines[0].substring(VERSION_PREFIX.length()).trim());
+			}
+			catch(NumberFormatException e){
+				s.version = 0;
+			}
+			first = 1;
+		}
+		//drop trailing empty line after last line break
+		int last = lines.length;
+		if(last > first && lines[last-1].length() == 0)
+			last--;
+		s.lines = Arrays.copyOfRange(lines, first, last);
+		return s;
+	}//readFile
+	
+}//settingsStore class
+
+/*
+ * ---------------------------------------------------
+ * Class macroGroup
+ * 
+ * Group of macros in the settings file, shown as one tab in the GUI
+ * 
+ * Settings file format, one entry per line:
+ * 		[Group name]				starts a group, following entries belong to it
+ * 		path						macro, named after its file
+ * 		Display name | path			macro with a name of its own, path must be absolute
+ * Entries before the first group header belong to the default group
+ * Empty lines are ignored
+ * 
+ * Parsing does not touch the macro files; they are checked when the group's panel is built
+ * -----------------------------------------------------
+ */
+class macroGroup{
+	
+	static final String DEFAULT_NAME = "Macros";
+	static final String NAME_SEPARATOR = "|";//may be part of a path on Linux and macOS, see parseEntry()
+	
+	String name;
+	macro[] macros;//all entries, valid or not
+	JPanel panel;//button panel, null until the group is first shown
+	int validCount;//number of valid macros in panel, set when panel is built
+	
+	//constructor
+	macroGroup(String name, macro[] macros){
+		this.name=name;
+		this.macros=macros;
+	}
+	
+	/*
+	* ---------------------------------------------------
+	* parse()
+	* 
+	* Split lines of settings file into groups, in order of first appearance
+	* Groups with the same name are merged
+	* 
+	* input String[]: lines of settings file
+	* returns macroGroup[]: groups with at least one entry
+	* ---------------------------------------------------
+	*/
+	static macroGroup[] parse(String[] lines){
+		LinkedHashMap<String, Vector<macro>> entries = new LinkedHashMap<String, Vector<macro>>();
+		String group = DEFAULT_NAME;
+		for(int i=0; i<lines.length; i++){
+			String header = groupName(lines[i]);
+			if(header != null){
+				group = header;
+				continue;
+			}
+			macro entry = parseEntry(lines[i]);
+			if(entry == null)
+				continue;
+			if(!entries.containsKey(group))
+				entries.put(group, new Vector<macro>());
+			entries.get(group).add(entry);
+		}
+		
+		macroGroup[] groups = new macroGroup[entries.size()];
+		int index = 0;
+		for(Map.Entry<String, Vector<macro>> e : entries.entrySet())
+			groups[index++] = new macroGroup(e.getKey(), e.getValue().toArray(new macro[e.getValue().size()]));
+		return groups;
+	}//parse
+	
+	/*
+	* ---------------------------------------------------
+	* groupName()
+	* 
+	* input String: line of settings file
+	* returns String: name of group if line is a group header, otherwise null
+	* ---------------------------------------------------
+	*/
+	static String groupName(String line){
+		String trimmed = line.trim();
+		if(trimmed.length() > 2 && trimmed.startsWith("[") && trimmed.endsWith("]"))
+			return trimmed.substring(1, trimmed.length()-1).trim();
+		return null;
+	}
+	
+	/*
+	* ---------------------------------------------------
+	* parseEntry()
+	* 
+	* Line is read as "name | path" only if the part after the first '|' is an absolute path,
+	* so that paths containing '|' (possible on Linux and macOS) are read as paths
+	* 
+	* input String: line of settings file, not a group header
+	* returns macro: null for empty lines
+	* ---------------------------------------------------
+	*/
+	static macro parseEntry(String line){
+		String trimmed = line.trim();
+		if(trimmed.length() == 0)
+			return null;
+		int separator = trimmed.indexOf(NAME_SEPARATOR);
+		if(separator < 0)
+			return new macro(trimmed);
+		String name = trimmed.substring(0, separator).trim();
+		String path = trimmed.substring(separator+1).trim();
+		if(!new File(path).isAbsolute())
+			return new macro(trimmed);
+		if(name.length() == 0)
+			return new macro(path);
+		return new macro(name, path);
+	}
+	
+	/*
+	* ---------------------------------------------------
+	* addEntry()
+	* 
+	* Add line for macro to the end of a group, creating the group at the end of the file if needed
+	* 
+	* input String[]: lines of settings file
+	* 		String: name of group
+	* 		String: line to add
+	* returns String[]: new lines
+	* ---------------------------------------------------
+	*/
+	static String[] addEntry(String[] lines, String group, String entryLine){
+		//find last line belonging to group
+		int insertAt = -1;
+		String current = DEFAULT_NAME;
+		for(int i=0; i<lines.length; i++){
+			String header = groupName(lines[i]);
+			if(header != null)
+				current = header;
+			if(current.equals(group) && (header != null || lines[i].trim().length() > 0))
+				insertAt = i+1;
+		}
+		
+		Vector<String> newLines = new Vector<String>(Arrays.asList(lines));
+		if(insertAt >= 0)
+			newLines.add(insertAt, entryLine);
+		else if(group.equals(DEFAULT_NAME))
+			newLines.add(0, entryLine);
+		else{
+			newLines.add("[" + group + "]");
+			newLines.add(entryLine);
+		}
+		return newLines.toArray(new String[newLines.size()]);
+	}//addEntry
+	
+	/*
+	* ---------------------------------------------------
+	* removeEntries()
+	* 
+	* Remove lines of the given macros from settings file lines
+	* Group headers are kept
+	* 
+	* input String[]: lines of settings file
+	* 		HashSet<String>: keys of macros to remove, see key()
+	* returns String[]: remaining lines
+	* ---------------------------------------------------
+	*/
+	static String[] removeEntries(String[] lines, HashSet<String> keys){
+		Vector<String> linesToKeep = new Vector<String>();
+		String group = DEFAULT_NAME;
+		for(int i=0; i<lines.length; i++){
+			String header = groupName(lines[i]);
+			if(header != null)
+				group = header;
+			else{
+				macro entry = parseEntry(lines[i]);
+				if(entry != null && keys.contains(key(group, entry.getPath())))
+					continue;
+			}
+			linesToKeep.add(lines[i]);
+		}
+		return linesToKeep.toArray(new String[linesToKeep.size()]);
+	}//removeEntries
+	
+	//true if other group has the same name and the same entries in the same order
+	boolean sameEntries(macroGroup other){
+		if(!name.equals(other.name) || macros.length != other.macros.length)
+			return false;
+		for(int i=0; i<macros.length; i++){
+			if(!macros[i].getPath().equals(other.macros[i].getPath()) || !macros[i].getName().equals(other.macros[i].getName()))
+				return false;
+		}
+		return true;
+	}
+	
+	//key identifying macro within settings file, for removeEntries()
+	static String key(String group, String path){
+		return group + "\n" + path;
+	}
+	
+}//macroGroup class
+
+/*
+ * ---------------------------------------------------
+ * Class macroBenchmark
+ * 
+ * Headless end-to-end benchmark of macro launches through macroLauncher:
+ * settings lookup, dependency check, run journal, macro interpreter and image I/O
+ * 
+ * Generates synthetic images, macros and a settings file in a work folder, then runs
+ * 		single	each worker launches one macro at a time, latency is the launch itself
+ * 		queued	all launches are queued at once for the workers, latency includes waiting in the queue
+ * 		batch	each worker launches every macro in the settings file in turn, latency is the whole batch
+ * with 1 up to the given number of workers, and reports throughput, latency percentiles
+ * and allocation rate as JSON, for comparison between releases
+ * 
+ * ImageJ's Interpreter keeps batch mode and batch mode images in static fields, so macros
+ * running at the same time in one JVM interfere with each other. Workers therefore only run
+ * settings lookup and dependency check in parallel; the launch itself (run journal, interpreter,
+ * image I/O) runs one at a time, like it does from the launch buttons on the event thread.
+ * The JSON lists which parts ran in parallel, and reports time spent waiting for the interpreter
+ * 
+ * Run from the ImageJ folder, with Macro Manager compiled, e.g.
+ * 		java -Djava.awt.headless=true -cp "ij.jar:plugins/Macro Manager" macroBenchmark workers=4 out=bench.json
+ * Options, all key=value:
+ * 		workers		maximum number of workers, at least 1 (4)
+ * 		iterations	launches per mode and number of workers, at least 1 (40)
+ * 		warmup		launches before measuring, not reported, at least 0 (8)
+ * 		size		width and height of synthetic images in pixels, at least 1 (512)
+ * 		images		number of synthetic images, at least 1 (4)
+ * 		dir			work folder (new folder in the system temp folder)
+ * 		out			file to write JSON to (standard output)
+ * 		label		free text stored in the JSON, e.g. release name
+ * -----------------------------------------------------
+ */
+class macroBenchmark{
+	
+	static final String GROUP = "Benchmark";
+	static final String[] MODES = {"single", "queued", "batch"};
+	static final String[] PARALLEL = {"settings lookup", "dependency check"};
+	static final String[] SERIALIZED = {"run journal", "macro interpreter", "image I/O"};
+	
+	//options
+	int maxWorkers = 4;
+	int iterations = 40;
+	int warmup = 8;
+	int imageSize = 512;
+	int noImages = 4;
+	String label = "";
+	
+	File workDir;
+	File outDir;//images saved by macros
+	settingsStore settings;
+	macroLauncher launcher;
+	ThreadMXBean threadBean;//null if allocation can not be measured
+	final Object interpreterLock = new Object();//one macro launch at a time, see class comment
+	
+	//result of one request
+	static class sample{
+		long latencyNanos;
+		long waitNanos;//time spent waiting for interpreterLock
+		long allocatedBytes;
+		boolean failed;
+	}
+	
+	public static void main(String[] args) throws Exception{
+		macroBenchmark benchmark = new macroBenchmark();
+		String outPath = null;
+		String dirPath = null;
+		for(int i=0; i<args.length; i++){
+			int eq = args[i].indexOf('=');
+			if(eq < 0)
+				throw new IllegalArgumentException("Expected key=value, got " + args[i]);
+			String key = args[i].substring(0, eq);
+			String value = args[i].substring(eq+1);
+			if(key.equals("workers"))
+				benchmark.maxWorkers = parseCount(key, value, 1);
+			else if(key.equals("iterations"))
+				benchmark.iterations = parseCount(key, value, 1);
+			else if(key.equals("warmup"))
+				benchmark.warmup = parseCount(key, value, 0);
+			else if(key.equals("size"))
+				benchmark.imageSize = parseCount(key, value, 1);
+			else if(key.equals("images"))
+				benchmark.noImages = parseCount(key, value, 1);
+			else if(key.equals("dir"))
+				dirPath = value;
+			else if(key.equals("out"))
+				outPath = value;
+			else if(key.equals("label"))
+				benchmark.label = value;
+			else
+				throw new IllegalArgumentException("Unknown option " + key);
+		}
+		File dir = dirPath != null ? new File(dirPath) : Files.createTempDirectory("macroBenchmark").toFile();
+		
+		benchmark.setUp(dir);
+		String json = benchmark.runAll();
+		if(outPath == null)
+			System.out.println(json);
+		else{
+			PrintWriter pw = new PrintWriter(outPath);
+			pw.println(json);
+			pw.close();
+		}
+		System.exit(0);//ImageJ may leave non-daemon threads behind
+	}//main
+	
+	//parse numeric option, rejecting values below min
+	private static int parseCount(String key, String value, int min){
+		int count;
+		try{
+			count = Integer.parseInt(value);
+		}
+		catch(NumberFormatException e){
+			throw new IllegalArgumentException("Option " + key + " must be a whole number, got " + value);
+		}
+		if(count < min)
+			throw new IllegalArgumentException("Option " + key + " must be at least " + min + ", got " + value);
+		return count;
+	}
+	
+	/*
+	* ---------------------------------------------------
+	* setUp()
+	* 
+	* Create synthetic images, macros, settings file, journal and launcher in work folder
+	* 
+	* input File: work folder, created if needed
+	* throws IOException
+	* ---------------------------------------------------
+	*/
+	void setUp(File dir) throws IOException{
+		workDir = dir.getAbsoluteFile();
+		outDir = new File(workDir, "out");
+		outDir.mkdirs();
+		
+		//synthetic images: smoothed noise, reproducible through seed
+		String[] imagePaths = new String[noImages];
+		for(int i=0; i<noImages; i++){
+			imagePaths[i] = macroPath(new File(workDir, "image" + i + ".tif"));
+			IJ.runMacro("random(\"seed\", " + i + ");\n" +
+				"setBatchMode(true);\n" +
+				"newImage(\"synthetic\", \"16-bit random\", " + imageSize + ", " + imageSize + ", 1);\n" +
+				"run(\"Gaussian Blur...\", \"sigma=4\");\n" +
+				"saveAs(\"Tiff\", \"" + imagePaths[i] + "\");\n" +
+				"close();\n");
+		}
+		
+		//representative macros, each opening one of the images at random
+		String openImage = "setBatchMode(true);\n" +
+			"images = newArray(\"" + String.join("\", \"", imagePaths) + "\");\n" +
+			"open(images[floor(random*images.length)]);\n";
+		String saveImage = "saveAs(\"Tiff\", \"" + macroPath(outDir) + "/\" + d2s(random*1e9, 0) + \".tif\");\n";
+		String helperPath = writeMacro("helper.ijm", openImage + "run(\"Invert\");\nclose();\n");
+		String[] macroPaths = {
+			writeMacro("blur.ijm", openImage + "run(\"Gaussian Blur...\", \"sigma=2\");\n" + saveImage + "close();\n"),
+			writeMacro("threshold.ijm", openImage + "setAutoThreshold(\"Default dark\");\nrun(\"Convert to Mask\");\n" +
+				"getStatistics(area, mean);\nclose();\n"),
+			writeMacro("measure.ijm", openImage + "sum = 0;\n" +
+				"for(y=0; y<getHeight(); y+=4)\n\tfor(x=0; x<getWidth(); x+=4)\n\t\tsum += getPixel(x, y);\nclose();\n"),
+			writeMacro("nested.ijm", "runMacro(\"" + helperPath + "\");\n")
+		};
+		
+		//settings file with one group of benchmark macros
+		File settingsFile = new File(workDir, "macroManagerSettings.txt");
+		PrintWriter pw = new PrintWriter(settingsFile);
+		pw.println("[" + GROUP + "]");
+		for(int i=0; i<macroPaths.length; i++)
+			pw.println(macroPaths[i]);
+		pw.close();
+		settings = new settingsStore(settingsFile.getPath());
+		
+		launcher = new macroLauncher(new dependencyGraph(workDir.getPath()),
+			runJournal.open(new File(workDir, "macroManagerJournal.bin").getPath()));
+		
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean)bean).isThreadAllocatedMemorySupported()){
+			((com.sun.management.ThreadMXBean)bean).setThreadAllocatedMemoryEnabled(true);
+			threadBean = bean;
+		}
+	}//setUp
+	
+	//path as written in a macro string literal; ImageJ accepts '/' on all platforms
+	private String macroPath(File file){
+		return file.getAbsolutePath().replace('\\', '/');
+	}
+	
+	//write macro to work folder, returns its path for macros and the settings file
+	private String writeMacro(String name, String code) throws IOException{
+		File file = new File(workDir, name);
+		PrintWriter pw = new PrintWriter(file);
+		pw.print(code);
+		pw.close();
+		return macroPath(file);
+	}
+	
+	/*
+	* ---------------------------------------------------
+	* runAll()
+	* 
+	* Warm up, then run every mode with 1 up to maxWorkers workers
+	* 
+	* returns String: results as JSON
+	* throws Exception
+	* ---------------------------------------------------
+	*/
+	String runAll() throws Exception{
+		runMode("single", 1, warmup);
+		
+		StringBuilder json = new StringBuilder();
+		json.append("{\n");
+		json.append("  \"label\": ").append(quote(label)).append(",\n");
+		json.append("  \"timestamp\": ").append(quote(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").format(new Date()))).append(",\n");
+		json.append("  \"java\": ").append(quote(System.getProperty("java.version"))).append(",\n");
+		json.append("  \"os\": ").append(quote(System.getProperty("os.name") + " " + System.getProperty("os.arch"))).append(",\n");
+		json.append("  \"cpus\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+		json.append("  \"config\": {\"workers\": ").append(maxWorkers).append(", \"iterations\": ").append(iterations)
+			.append(", \"warmup\": ").append(warmup).append(", \"imageSize\": ").append(imageSize)
+			.append(", \"images\": ").append(noImages).append("},\n");
+		json.append("  \"parallel\": ").append(quoteAll(PARALLEL)).append(",\n");
+		json.append("  \"serialized\": ").append(quoteAll(SERIALIZED)).append(",\n");
+		json.append("  \"results\": [\n");
+		for(int m=0; m<MODES.length; m++){
+			for(int workers=1; workers<=maxWorkers; workers++){
+				long start = System.nanoTime();
+				sample[] samples = runMode(MODES[m], workers, iterations);
+				long wallNanos = System.nanoTime() - start;
+				json.append("    ").append(report(MODES[m], workers, samples, wallNanos));
+				json.append(m == MODES.length-1 && workers == maxWorkers ? "\n" : ",\n");
+				deleteOutput();
+			}
+		}
+		json.append("  ]\n}");
+		return json.toString();
+	}//runAll
+	
+	/*
+	* ---------------------------------------------------
+	* runMode()
+	* 
+	* Run requests in one mode
+	* 
+	* input String: mode, one of MODES
+	* 		int: number of workers
+	* 		int: number of requests
+	* returns sample[]: one sample per request
+	* throws Exception
+	* ---------------------------------------------------
+	*/
+	sample[] runMode(final String mode, int workers, final int requests) throws Exception{
+		final sample[] samples = new sample[requests];
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		try{
+			if(mode.equals("queued")){
+				//queue every request at once; latency counts from submission
+				Vector<Future<?>> futures = new Vector<Future<?>>();
+				for(int i=0; i<requests; i++){
+					final int index = i;
+					final long submitted = System.nanoTime();
+					futures.add(pool.submit(new Runnable(){
+						public void run(){
+							samples[index] = request(mode, index, submitted);
+						}
+					}));
+				}
+				for(int i=0; i<futures.size(); i++)
+					futures.get(i).get();
+			}
+			else{
+				//each worker takes the next request when its previous one is done
+				final AtomicInteger next = new AtomicInteger();
+				Vector<Future<?>> futures = new Vector<Future<?>>();
+				for(int w=0; w<workers; w++){
+					futures.add(pool.submit(new Runnable(){
+						public void run(){
+							int index;
+							while((index = next.getAndIncrement()) < requests)
+								samples[index] = request(mode, index, System.nanoTime());
+						}
+					}));
+				}
+				for(int i=0; i<futures.size(); i++)
+					futures.get(i).get();
+			}
+		}
+		finally{
+			pool.shutdown();
+		}
+		return samples;
+	}//runMode
+	
+	/*
+	* ---------------------------------------------------
+	* request()
+	* 
+	* Look up macro(s) in settings file and launch them, like a click on a launch button
+	* Launches wait for interpreterLock, see class comment
+	* 
+	* input String: mode
+	* 		int: request number, selects the macro in single and queued mode
+	* 		long: System.nanoTime() the request was issued
+	* returns sample
+	* ---------------------------------------------------
+	*/
+	sample request(String mode, int index, long issued){
+		sample s = new sample();
+		long threadId = Thread.currentThread().getId();
+		long allocatedBefore = threadBean != null ? allocatedBytes(threadId) : 0;
+		try{
+			macro[] macros = lookUp();
+			if(mode.equals("batch")){
+				for(int i=0; i<macros.length; i++)
+					s.failed |= !launch(macros[i], s);
+			}
+			else
+				s.failed = !launch(macros[index % macros.length], s);
+		}
+		catch(Exception e){
+			s.failed = true;
+		}
+		s.latencyNanos = System.nanoTime() - issued;
+		if(threadBean != null)
+			s.allocatedBytes = allocatedBytes(threadId) - allocatedBefore;
+		return s;
+	}//request
+	
+	//macros of benchmark group, as read from the settings file
+	private macro[] lookUp() throws IOException{
+		macroGroup[] groups = macroGroup.parse(settings.read().lines);
+		for(int i=0; i<groups.length; i++){
+			if(groups[i].name.equals(GROUP))
+				return groups[i].macros;
+		}
+		throw new IOException("Group " + GROUP + " missing in settings file");
+	}
+	
+	//launch macro through launcher, returns false if it is missing dependencies or did not complete
+	//time waiting for the interpreter is added to s
+	private boolean launch(macro m, sample s){
+		if(launcher.preload(m.getPath()).length > 0)
+			return false;
+		byte[] journalName = runJournal.encodeName(m.getName());
+		long waitStart = System.nanoTime();
+		synchronized(interpreterLock){
+			s.waitNanos += System.nanoTime() - waitStart;
+			return launcher.launch(m.getPath(), journalName) == runJournal.COMPLETE;
+		}
+	}
+	
+	private long allocatedBytes(long threadId){
+		return ((com.sun.management.ThreadMXBean)threadBean).getThreadAllocatedBytes(threadId);
+	}
+	
+	/*
+	* ---------------------------------------------------
+	* report()
+	* 
+	* Summarize samples of one mode and number of workers as JSON object
+	* ---------------------------------------------------
+	*/
+	String report(String mode, int workers, sample[] samples, long wallNanos){
+		long[] latencies = new long[samples.length];
+		long allocated = 0;
+		int failures = 0;
+		double latencySum = 0;
+		double waitSum = 0;
+		for(int i=0; i<samples.length; i++){
+			latencies[i] = samples[i].latencyNanos;
+			latencySum += samples[i].latencyNanos;
+			waitSum += samples[i].waitNanos;
+			allocated += samples[i].allocatedBytes;
+			if(samples[i].failed)
+				failures++;
+		}
+		Arrays.sort(latencies);
+		double seconds = wallNanos / 1e9;
+		
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"mode\": ").append(quote(mode));
+		sb.append(", \"workers\": ").append(workers);
+		sb.append(", \"requests\": ").append(samples.length);
+		sb.append(", \"failures\": ").append(failures);
+		sb.append(", \"seconds\": ").append(number(seconds));
+		sb.append(", \"throughput\": ").append(number(samples.length / seconds));
+		sb.append(", \"latencyMs\": {\"mean\": ").append(number(latencySum / samples.length / 1e6));
+		sb.append(", \"p50\": ").append(number(percentile(latencies, 50) / 1e6));
+		sb.append(", \"p90\": ").append(number(percentile(latencies, 90) / 1e6));
+		sb.append(", \"p99\": ").append(number(percentile(latencies, 99) / 1e6));
+		sb.append(", \"max\": ").append(number(latencies[latencies.length-1] / 1e6)).append("}");
+		sb.append(", \"interpreterWaitMs\": ").append(number(waitSum / samples.length / 1e6));
+		if(threadBean != null){
+			sb.append(", \"allocatedBytesPerRequest\": ").append(allocated / samples.length);
+			sb.append(", \"allocationRateMBs\": ").append(number(allocated / seconds / (1024*1024)));
+		}
+		sb.append("}");
+		return sb.toString();
+	}//report
+	
+	//nearest-rank percentile of sorted values
+	private long percentile(long[] sorted, double p){
+		int rank = (int)Math.ceil(p / 100 * sorted.length);
+		return sorted[Math.max(0, Math.min(sorted.length-1, rank-1))];
+	}
+	
+	private String number(double value){
+		return String.format(Locale.ROOT, "%.3f", value);
+	}
+	
+	private String quoteAll(String[] texts){
+		StringBuilder sb = new StringBuilder("[");
+		for(int i=0; i<texts.length; i++)
+			sb.append(i == 0 ? "" : ", ").append(quote(texts[i]));
+		return sb.append("]").toString();
+	}
+	
+	private String quote(String text){
+		return "\"" + text.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+	
+	//remove images saved by macros, so runs do not fill the disk
+	private void deleteOutput(){
+		File[] files = outDir.listFiles();
+		if(files == null)
+			return;
+		for(int i=0; i<files.length; i++)
+			files[i].delete();
+	}
+	
+}//macroBenchmark class